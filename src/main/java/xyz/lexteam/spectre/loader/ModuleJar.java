@@ -0,0 +1,71 @@
+/*
+ * This file is part of Spectre, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2016, Lexteam <http://www.lexteam.xyz/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package xyz.lexteam.spectre.loader;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * A module jar, as read by the discovery pass of the module loader.
+ */
+public class ModuleJar {
+
+    private final File file;
+    private final List<String> classNames;
+    private final boolean verified;
+
+    public ModuleJar(File file, List<String> classNames, boolean verified) {
+        this.file = file;
+        this.classNames = classNames;
+        this.verified = verified;
+    }
+
+    /**
+     * Gets the jar file.
+     *
+     * @return The file
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Gets the binary names of all the classes within the jar.
+     *
+     * @return The class names
+     */
+    public List<String> getClassNames() {
+        return this.classNames;
+    }
+
+    /**
+     * Gets whether the jar passed integrity verification.
+     * This is always true when the module loader has no verifier.
+     *
+     * @return True if verified
+     */
+    public boolean isVerified() {
+        return this.verified;
+    }
+}
@@ -32,12 +32,27 @@ import xyz.lexteam.spectre.loader.hook.ReturnableHook;
 import xyz.lexteam.spectre.loader.hook.key.HookKey;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.security.CodeSigner;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 /**
@@ -48,6 +63,7 @@ public class ModuleLoader {
 
     private final Map<HookKey, Hook> hookRegistry = new HashMap();
     private File modulesDir;
+    private ModuleVerifier verifier;
 
     /**
      * Constructs a new module loader, where the modules directory is set the the 'modules' directory in the working
@@ -74,31 +90,22 @@ public class ModuleLoader {
             public List<Class> execute(HookInfo info) {
                 List<Class> moduleClasses = new ArrayList<>();
 
-                File file = info.get(File.class);
+                ModuleJar moduleJar = info.get(ModuleJar.class);
                 Class annotationClass = info.get(Class.class);
 
                 try {
                     ModuleClassLoader classLoader = new ModuleClassLoader(
-                            file.toURI().toURL(), ModuleLoader.class.getClassLoader());
-
-                    try (JarFile jarFile = new JarFile(file)) {
-                        jarFile.stream().forEach(jarEntry -> {
-                            if (!jarEntry.isDirectory() && jarEntry.getName().endsWith(".class")) {
-                                String className = jarEntry.getName().replace('/', '.');
-
-                                try {
-                                    Class<?> moduleClass = classLoader.loadClass(
-                                            className.substring(0, className.length() - ".class".length()));
-                                    if (moduleClass.isAnnotationPresent(annotationClass)) {
-                                        moduleClasses.add(moduleClass);
-                                    }
-                                } catch (ClassNotFoundException e) {
-                                    e.printStackTrace();
-                                }
+                            moduleJar.getFile().toURI().toURL(), ModuleLoader.class.getClassLoader());
+
+                    for (String className : moduleJar.getClassNames()) {
+                        try {
+                            Class<?> moduleClass = classLoader.loadClass(className);
+                            if (moduleClass.isAnnotationPresent(annotationClass)) {
+                                moduleClasses.add(moduleClass);
                             }
-                        });
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                        } catch (ClassNotFoundException e) {
+                            e.printStackTrace();
+                        }
                     }
                 } catch (MalformedURLException e) {
                     e.printStackTrace();
@@ -173,6 +180,18 @@ public class ModuleLoader {
         this.hookRegistry.put(key, hook);
     }
 
+    /**
+     * Sets the verifier used to check the integrity of module jars before they are loaded.
+     * Jars which fail verification are not loaded. If null, no verification is done.
+     * A verifier may be shared between module loaders, as each only prunes the cache entries for its own modules
+     * directory.
+     *
+     * @param verifier The verifier
+     */
+    public void setVerifier(ModuleVerifier verifier) {
+        this.verifier = verifier;
+    }
+
     /**
      * Finds and loads all the modules in the module directory specified in the constructor.
      *
@@ -199,10 +218,48 @@ public class ModuleLoader {
             return file.getName().endsWith(".jar");
         });
 
-        for (File jarFile : jarFiles) {
+        if (jarFiles == null || jarFiles.length == 0) {
+            return modules;
+        }
+
+        // Read and verify all the jars in parallel
+        List<ModuleJar> moduleJars = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(jarFiles.length, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<ModuleJar>> futures = new ArrayList<>();
+            for (File jarFile : jarFiles) {
+                futures.add(executor.submit(() -> this.readModuleJar(jarFile)));
+            }
+            for (int i = 0; i < jarFiles.length; i++) {
+                try {
+                    moduleJars.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    moduleJars.add(new ModuleJar(jarFiles[i], Collections.emptyList(), false));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading module jars", e);
+        } finally {
+            executor.shutdown();
+        }
+
+        if (this.verifier != null) {
+            this.verifier.saveCache(this.modulesDir, Arrays.asList(jarFiles));
+        }
+
+        for (ModuleJar moduleJar : moduleJars) {
+            if (!moduleJar.isVerified()) {
+                System.err.println("Not loading " + moduleJar.getFile() + ", as it failed verification");
+                continue;
+            }
+
             // Get the module descriptor
             HookInfo descriptorInfo = new HookInfo();
-            descriptorInfo.put(File.class, jarFile);
+            descriptorInfo.put(File.class, moduleJar.getFile());
+            descriptorInfo.put(ModuleJar.class, moduleJar);
             descriptorInfo.put(Class.class, moduleClass);
             List<Class> mainClasses = this.getHook(Hooks.FIND_MAIN_CLASSES).execute(descriptorInfo);
 
@@ -225,4 +282,136 @@ public class ModuleLoader {
 
         return modules;
     }
+
+    /**
+     * Reads the class names from the given jar's central directory, which is what the module class loader uses.
+     * If the verifier has a trusted digest for the jar, the whole file is digested in a separate read, and if
+     * signatures are being checked, every entry is read through the central directory to check its signers.
+     *
+     * @param file The jar file
+     * @return The module jar
+     */
+    ModuleJar readModuleJar(File file) {
+        if (this.verifier == null) {
+            return new ModuleJar(file, readClassNames(file, null), true);
+        }
+
+        // Taken before reading, so a jar changed while it is read is not cached with its old fingerprint
+        String fingerprint = this.verifier.fingerprint(file);
+        if (this.verifier.isCached(file, fingerprint)) {
+            return new ModuleJar(file, readClassNames(file, null), true);
+        }
+
+        // The digest is only worth reading the whole file for if it could match
+        String sha256 = null;
+        if (this.verifier.hasTrustedDigest(file)) {
+            MessageDigest digest = ModuleVerifier.newDigest();
+            try (InputStream in = new FileInputStream(file)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return new ModuleJar(file, Collections.emptyList(), false);
+            }
+            sha256 = ModuleVerifier.toHex(digest.digest());
+        }
+
+        Set<Certificate> signers = this.verifier.isCheckingSignatures() ? new HashSet<>() : null;
+        List<String> classNames;
+        try {
+            classNames = readClassNames(file, signers);
+        } catch (SecurityException e) {
+            e.printStackTrace();
+            return new ModuleJar(file, Collections.emptyList(), false);
+        }
+
+        boolean verified = this.verifier.verify(file, fingerprint, sha256,
+                signers == null ? Collections.emptySet() : signers);
+        return new ModuleJar(file, classNames, verified);
+    }
+
+    /**
+     * Reads the class names from the given jar's central directory.
+     * If a set of signers is given, every entry is read and verified, and the set is left holding only the
+     * certificates which signed every entry other than the signature files themselves.
+     *
+     * @param file The jar file
+     * @param signers The signers, or null if signatures are not checked
+     * @return The class names
+     */
+    private static List<String> readClassNames(File file, Set<Certificate> signers) {
+        List<String> classNames = new ArrayList<>();
+
+        try (JarFile jarFile = new JarFile(file, signers != null)) {
+            byte[] buffer = new byte[8192];
+            boolean firstEntry = true;
+
+            for (JarEntry jarEntry : Collections.list(jarFile.entries())) {
+                if (jarEntry.isDirectory()) {
+                    continue;
+                }
+
+                String name = jarEntry.getName();
+                if (name.endsWith(".class")) {
+                    String className = name.replace('/', '.');
+                    classNames.add(className.substring(0, className.length() - ".class".length()));
+                }
+
+                if (signers == null || isSignatureEntry(name)) {
+                    continue;
+                }
+
+                // Entries have to be read fully before their signers are known
+                try (InputStream in = jarFile.getInputStream(jarEntry)) {
+                    while (in.read(buffer) != -1) {
+                    }
+                }
+
+                Set<Certificate> entrySigners = new HashSet<>();
+                CodeSigner[] codeSigners = jarEntry.getCodeSigners();
+                if (codeSigners != null) {
+                    for (CodeSigner codeSigner : codeSigners) {
+                        entrySigners.add(codeSigner.getSignerCertPath().getCertificates().get(0));
+                    }
+                }
+
+                if (firstEntry) {
+                    signers.addAll(entrySigners);
+                    firstEntry = false;
+                } else {
+                    signers.retainAll(entrySigners);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (signers != null) {
+                signers.clear();
+            }
+        }
+
+        return classNames;
+    }
+
+    /**
+     * Gets whether the given entry is part of the jar's signature, and so is not signed itself.
+     *
+     * @param name The entry name
+     * @return True if a signature entry
+     */
+    private static boolean isSignatureEntry(String name) {
+        String upperName = name.toUpperCase(Locale.ENGLISH);
+        if (!upperName.startsWith("META-INF/") || upperName.indexOf('/', "META-INF/".length()) != -1) {
+            return false;
+        }
+
+        return upperName.equals("META-INF/MANIFEST.MF")
+                || upperName.endsWith(".SF")
+                || upperName.endsWith(".RSA")
+                || upperName.endsWith(".DSA")
+                || upperName.endsWith(".EC")
+                || upperName.startsWith("META-INF/SIG-");
+    }
 }
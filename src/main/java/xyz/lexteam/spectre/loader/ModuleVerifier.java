@@ -0,0 +1,349 @@
+/*
+ * This file is part of Spectre, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2016, Lexteam <http://www.lexteam.xyz/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package xyz.lexteam.spectre.loader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Verifies the integrity of module jars before they are loaded.
+ *
+ * A jar is trusted if its SHA-256 digest matches the one given for its file name in the trusted manifest, or if
+ * every entry within it is signed by one of the trusted certificates. Signatures are checked through the jar's
+ * central directory, which is what the module class loader reads classes from.
+ *
+ * Verified jars are cached by their fingerprint, so unchanged jars are not read again for verification. The
+ * fingerprint is the size, last modified time, inode and change time of the jar. The change time cannot be set by
+ * users, so a jar that is modified in place and has its last modified time restored is verified again.
+ *
+ * Where the inode and change time are not available, such as on Windows, the fingerprint falls back to the size,
+ * last modified time and file key (if the platform has one). This is weaker: a jar modified in place with its size
+ * and last modified time restored is still trusted from the cache, so the cache should not be used there if that
+ * matters.
+ *
+ * The cache does not protect against anyone who can set the change time, such as by changing the system clock,
+ * nor against changes to the cache file itself, which is not authenticated. The cache file needs the same
+ * protection as the trusted manifest: it must only be writable by those trusted to change which jars are loaded.
+ */
+public class ModuleVerifier {
+
+    private final Map<String, String> trustedDigests = new HashMap<>();
+    private final Map<String, Certificate> trustedCertificates = new HashMap<>();
+    private final Map<String, String> cache = new ConcurrentHashMap<>();
+    private final File cacheFile;
+    private volatile boolean cacheDirty;
+
+    /**
+     * Constructs a new module verifier, which only caches verified jars in memory.
+     */
+    public ModuleVerifier() {
+        this(null);
+    }
+
+    /**
+     * Constructs a new module verifier, which persists verified jars to the specified cache file.
+     * The cache file may be shared between module directories, but see the class documentation for what it does and
+     * does not protect against.
+     *
+     * @param cacheFile The cache file
+     */
+    public ModuleVerifier(File cacheFile) {
+        this.cacheFile = cacheFile;
+
+        if (cacheFile != null && cacheFile.exists()) {
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(cacheFile)) {
+                properties.load(in);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            properties.stringPropertyNames().forEach(key -> this.cache.put(key, properties.getProperty(key)));
+        }
+    }
+
+    /**
+     * Adds all the digests from the given trusted manifest, which maps jar file names to their hex-encoded SHA-256
+     * digest, in the {@link Properties} format.
+     *
+     * @param manifest The trusted manifest
+     * @return This verifier, for chaining
+     * @throws IOException If the manifest could not be read
+     */
+    public ModuleVerifier trustManifest(File manifest) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(manifest)) {
+            properties.load(in);
+        }
+        properties.stringPropertyNames().forEach(name -> this.trustDigest(name, properties.getProperty(name)));
+        return this;
+    }
+
+    /**
+     * Trusts the jar with the given file name, if it has the given SHA-256 digest.
+     *
+     * @param jarName The jar's file name
+     * @param sha256 The hex-encoded SHA-256 digest
+     * @return This verifier, for chaining
+     */
+    public ModuleVerifier trustDigest(String jarName, String sha256) {
+        this.trustedDigests.put(jarName, sha256.trim().toLowerCase(Locale.ENGLISH));
+        return this;
+    }
+
+    /**
+     * Trusts all jars that are entirely signed by the given certificate.
+     *
+     * @param certificate The certificate
+     * @return This verifier, for chaining
+     */
+    public ModuleVerifier trustCertificate(Certificate certificate) {
+        this.trustedCertificates.put(certificateFingerprint(certificate), certificate);
+        return this;
+    }
+
+    /**
+     * Gets whether the jars need their signatures checked, which requires every entry to be read.
+     *
+     * @return True if there are trusted certificates
+     */
+    boolean isCheckingSignatures() {
+        return !this.trustedCertificates.isEmpty();
+    }
+
+    /**
+     * Gets whether there is a trusted digest for the given jar, so whether it is worth digesting.
+     *
+     * @param file The jar file
+     * @return True if there is a trusted digest
+     */
+    boolean hasTrustedDigest(File file) {
+        return this.trustedDigests.containsKey(file.getName());
+    }
+
+    /**
+     * Gets the fingerprint of the given jar, used to tell whether it has changed since it was verified.
+     *
+     * @param file The jar file
+     * @return The fingerprint, or null if the jar cannot be fingerprinted
+     */
+    String fingerprint(File file) {
+        Map<String, Object> attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), "unix:ino,ctime");
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return basicFingerprint(file);
+        } catch (IOException e) {
+            return null;
+        }
+
+        Object inode = attributes.get("ino");
+        Object changeTime = attributes.get("ctime");
+        if (inode == null || !(changeTime instanceof FileTime)) {
+            return null;
+        }
+
+        return file.length() + ":" + file.lastModified() + ":" + inode + ":"
+                + ((FileTime) changeTime).to(TimeUnit.NANOSECONDS);
+    }
+
+    private static String basicFingerprint(File file) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+
+        Object fileKey = attributes.fileKey();
+        return attributes.size() + ":" + attributes.lastModifiedTime().toMillis()
+                + (fileKey == null ? "" : ":" + fileKey);
+    }
+
+    /**
+     * Gets whether the given jar has been verified before, and has not changed since.
+     *
+     * @param file The jar file
+     * @param fingerprint The jar's fingerprint, from {@link #fingerprint(File)}
+     * @return True if the jar is still trusted
+     */
+    boolean isCached(File file, String fingerprint) {
+        if (fingerprint == null) {
+            return false;
+        }
+
+        String entry = this.cache.get(cacheKey(file));
+        if (entry == null) {
+            return false;
+        }
+
+        String[] parts = entry.split(",", -1);
+        if (parts.length < 2 || !parts[0].equals(fingerprint)) {
+            return false;
+        }
+
+        // The trust settings may have changed since the jar was cached
+        String sha256 = parts[1].isEmpty() ? null : parts[1];
+        return this.isTrusted(file, sha256, new HashSet<>(Arrays.asList(parts).subList(2, parts.length)));
+    }
+
+    /**
+     * Verifies the given jar, caching the result if it is trusted.
+     *
+     * @param file The jar file
+     * @param fingerprint The jar's fingerprint, from {@link #fingerprint(File)}, taken before it was read
+     * @param sha256 The hex-encoded SHA-256 digest of the jar, or null if there is no trusted digest for it
+     * @param signers The certificates which signed every entry in the jar
+     * @return True if the jar is trusted
+     */
+    boolean verify(File file, String fingerprint, String sha256, Set<Certificate> signers) {
+        Set<String> trustedSigners = new HashSet<>();
+        for (Certificate signer : signers) {
+            String certificateFingerprint = certificateFingerprint(signer);
+            if (this.trustedCertificates.containsKey(certificateFingerprint)) {
+                trustedSigners.add(certificateFingerprint);
+            }
+        }
+
+        if (!this.isTrusted(file, sha256, trustedSigners)) {
+            if (this.cache.remove(cacheKey(file)) != null) {
+                this.cacheDirty = true;
+            }
+            return false;
+        }
+
+        if (fingerprint != null) {
+            StringBuilder entry = new StringBuilder(fingerprint).append(',').append(sha256 == null ? "" : sha256);
+            trustedSigners.forEach(signer -> entry.append(',').append(signer));
+            this.cache.put(cacheKey(file), entry.toString());
+            this.cacheDirty = true;
+        }
+        return true;
+    }
+
+    private boolean isTrusted(File file, String sha256, Set<String> signers) {
+        if (sha256 != null && sha256.equals(this.trustedDigests.get(file.getName()))) {
+            return true;
+        }
+
+        for (String signer : signers) {
+            if (this.trustedCertificates.containsKey(signer)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the cache to the cache file, if it has changed since it was last saved.
+     * Entries for jars in the given directory, other than the given ones, are removed first. Entries for jars in
+     * other directories are kept.
+     *
+     * @param directory The directory that was scanned
+     * @param jarFiles The jars that are still present in the directory
+     */
+    public synchronized void saveCache(File directory, Collection<File> jarFiles) {
+        String directoryPath = directory.getAbsolutePath();
+        Set<String> keys = jarFiles.stream().map(ModuleVerifier::cacheKey).collect(Collectors.toSet());
+        if (this.cache.keySet().removeIf(key -> directoryPath.equals(new File(key).getParent())
+                && !keys.contains(key))) {
+            this.cacheDirty = true;
+        }
+
+        if (this.cacheFile == null || !this.cacheDirty) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.putAll(this.cache);
+        try (OutputStream out = new FileOutputStream(this.cacheFile)) {
+            properties.store(out, "Spectre verified module jars");
+            this.cacheDirty = false;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String cacheKey(File file) {
+        return file.getAbsolutePath();
+    }
+
+    private static String certificateFingerprint(Certificate certificate) {
+        try {
+            return toHex(newDigest().digest(certificate.getEncoded()));
+        } catch (CertificateEncodingException e) {
+            throw new IllegalArgumentException("Unable to encode certificate", e);
+        }
+    }
+
+    /**
+     * Creates a new SHA-256 message digest.
+     *
+     * @return The message digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encodes the given bytes as lowercase hex.
+     *
+     * @param bytes The bytes
+     * @return The hex string
+     */
+    static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
@@ -51,7 +51,7 @@ public class HookInfo {
      * @return The value
      */
     public <T> T get(Class<T> key) {
-        return this.get(key);
+        return key.cast(this.locals.get(key));
     }
 
     /**
@@ -0,0 +1,107 @@
+/*
+ * This file is part of Spectre, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2016, Lexteam <http://www.lexteam.xyz/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package xyz.lexteam.spectre.loader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import xyz.lexteam.spectre.ModuleContainer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+public class ModuleLoaderTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File modulesDir;
+    private File cacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+        this.modulesDir = this.folder.newFolder("modules");
+        this.cacheFile = new File(this.folder.getRoot(), "cache.properties");
+    }
+
+    @Test
+    public void onlyVerifiedModulesAreLoaded() throws IOException {
+        File trusted = this.createModuleJar("trusted.jar", TrustedModule.class);
+        this.createModuleJar("untrusted.jar", UntrustedModule.class);
+        Files.write(new File(this.modulesDir, "corrupt.jar").toPath(), new byte[] { 1, 2, 3 });
+
+        ModuleLoader loader = new ModuleLoader(this.modulesDir);
+        loader.setVerifier(new ModuleVerifier(this.cacheFile).trustDigest("trusted.jar", sha256(trusted)));
+
+        List<ModuleContainer> modules = loader.loadAllModules(TestModule.class);
+        assertEquals(1, modules.size());
+        assertEquals(TrustedModule.class, modules.get(0).getInstance().getClass());
+        assertTrue(this.cacheFile.exists());
+    }
+
+    private File createModuleJar(String name, Class<?> moduleClass) throws IOException {
+        String entryName = moduleClass.getName().replace('.', '/') + ".class";
+
+        File file = new File(this.modulesDir, name);
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+             InputStream in = ModuleLoaderTest.class.getClassLoader().getResourceAsStream(entryName)) {
+            out.putNextEntry(new JarEntry(entryName));
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.closeEntry();
+        }
+        return file;
+    }
+
+    private static String sha256(File file) throws IOException {
+        return ModuleVerifier.toHex(ModuleVerifier.newDigest().digest(Files.readAllBytes(file.toPath())));
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    public @interface TestModule {
+    }
+
+    @TestModule
+    public static class TrustedModule {
+    }
+
+    @TestModule
+    public static class UntrustedModule {
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * This file is part of Spectre, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2016, Lexteam <http://www.lexteam.xyz/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package xyz.lexteam.spectre.loader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class ModuleVerifierTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File modulesDir;
+    private File cacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+        this.modulesDir = this.folder.newFolder("modules");
+        this.cacheFile = new File(this.folder.getRoot(), "cache.properties");
+    }
+
+    @Test
+    public void matchingDigestIsAccepted() throws IOException {
+        File jar = this.createJar("module.jar");
+        ModuleVerifier verifier = new ModuleVerifier().trustDigest("module.jar", sha256(jar));
+
+        ModuleJar moduleJar = this.read(verifier, jar);
+        assertTrue(moduleJar.isVerified());
+        assertEquals(Collections.singletonList("p.M"), moduleJar.getClassNames());
+    }
+
+    @Test
+    public void wrongDigestIsRejected() throws IOException {
+        File jar = this.createJar("module.jar");
+        ModuleVerifier verifier = new ModuleVerifier().trustDigest("module.jar", sha256(this.createJar("other.jar")));
+        new File(this.modulesDir, "other.jar").delete();
+
+        assertFalse(this.read(verifier, jar).isVerified());
+    }
+
+    @Test
+    public void tamperedJarIsRejectedAfterCacheHit() throws Exception {
+        File jar = this.createJar("module.jar");
+        String sha256 = sha256(jar);
+
+        ModuleVerifier verifier = new ModuleVerifier(this.cacheFile).trustDigest("module.jar", sha256);
+        assertTrue(this.read(verifier, jar).isVerified());
+        verifier.saveCache(this.modulesDir, Collections.singleton(jar));
+
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("unix"));
+        verifier = new ModuleVerifier(this.cacheFile).trustDigest("module.jar", sha256);
+        String fingerprint = verifier.fingerprint(jar);
+        assumeNotNull(fingerprint);
+        assertTrue(verifier.isCached(jar, fingerprint));
+
+        // Flip the last byte of the jar comment, keeping the size and last modified time
+        long length = jar.length();
+        long lastModified = jar.lastModified();
+        try (RandomAccessFile file = new RandomAccessFile(jar, "rw")) {
+            file.seek(length - 1);
+            int b = file.read();
+            file.seek(length - 1);
+            file.write(b ^ 1);
+        }
+        jar.setLastModified(lastModified);
+
+        // The change time may not have moved on yet, on filesystems with coarse timestamps
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fingerprint.equals(verifier.fingerprint(jar)) && System.currentTimeMillis() < deadline) {
+            jar.setLastModified(lastModified);
+        }
+        assertEquals(length, jar.length());
+        assertEquals(lastModified, jar.lastModified());
+        assertNotEquals(fingerprint, verifier.fingerprint(jar));
+
+        verifier = new ModuleVerifier(this.cacheFile).trustDigest("module.jar", sha256);
+        assertFalse(this.read(verifier, jar).isVerified());
+    }
+
+    @Test
+    public void signedJarIsAccepted() throws Exception {
+        File jar = this.copyResource("signed.jar");
+        ModuleVerifier verifier = new ModuleVerifier().trustCertificate(this.trustedCertificate());
+
+        ModuleJar moduleJar = this.read(verifier, jar);
+        assertTrue(moduleJar.isVerified());
+        assertEquals(Collections.singletonList("p.M"), moduleJar.getClassNames());
+    }
+
+    @Test
+    public void signedJarWithUnsignedEntryIsRejected() throws Exception {
+        File signed = this.copyResource("signed.jar");
+        ModuleVerifier verifier = new ModuleVerifier().trustCertificate(this.trustedCertificate());
+
+        assertFalse(this.read(verifier, this.addEntry(signed, "unsigned.jar", "p/N.class")).isVerified());
+        assertFalse(this.read(verifier,
+                this.addEntry(signed, "versioned.jar", "META-INF/versions/9/p/M.class")).isVerified());
+        assertFalse(this.read(verifier,
+                this.addEntry(signed, "service.jar", "META-INF/services/p.Service")).isVerified());
+    }
+
+    @Test
+    public void changedTrustInvalidatesCache() throws Exception {
+        File jar = this.createJar("module.jar");
+        ModuleVerifier verifier = new ModuleVerifier(this.cacheFile).trustDigest("module.jar", sha256(jar));
+        assertTrue(this.read(verifier, jar).isVerified());
+        verifier.saveCache(this.modulesDir, Collections.singleton(jar));
+
+        verifier = new ModuleVerifier(this.cacheFile);
+        assumeNotNull(verifier.fingerprint(jar));
+        assertFalse(verifier.isCached(jar, verifier.fingerprint(jar)));
+        assertFalse(this.read(verifier, jar).isVerified());
+
+        File signed = this.copyResource("signed.jar");
+        verifier = new ModuleVerifier(this.cacheFile).trustCertificate(this.trustedCertificate());
+        assertTrue(this.read(verifier, signed).isVerified());
+        verifier.saveCache(this.modulesDir, Collections.singleton(signed));
+
+        verifier = new ModuleVerifier(this.cacheFile);
+        assumeNotNull(verifier.fingerprint(signed));
+        assertFalse(verifier.isCached(signed, verifier.fingerprint(signed)));
+        assertFalse(this.read(verifier, signed).isVerified());
+    }
+
+    @Test
+    public void certificateOnlyVerifierDoesNotDigest() throws Exception {
+        File jar = this.copyResource("signed.jar");
+        ModuleVerifier verifier = new ModuleVerifier(this.cacheFile).trustCertificate(this.trustedCertificate());
+        assertTrue(this.read(verifier, jar).isVerified());
+        assumeNotNull(verifier.fingerprint(jar));
+        verifier.saveCache(this.modulesDir, Collections.singleton(jar));
+
+        String entry = this.loadCache().getProperty(jar.getAbsolutePath());
+        assertEquals("", entry.split(",", -1)[1]);
+    }
+
+    @Test
+    public void missingJarsArePrunedFromCache() throws Exception {
+        File jar = this.createJar("module.jar");
+        File other = this.createJar("other.jar");
+        File elsewhere = new File(this.folder.newFolder("elsewhere"), "elsewhere.jar");
+        Files.copy(jar.toPath(), elsewhere.toPath());
+        ModuleVerifier verifier = new ModuleVerifier(this.cacheFile)
+                .trustDigest("module.jar", sha256(jar))
+                .trustDigest("other.jar", sha256(other))
+                .trustDigest("elsewhere.jar", sha256(elsewhere));
+        assertTrue(this.read(verifier, jar).isVerified());
+        assertTrue(this.read(verifier, other).isVerified());
+        assertTrue(this.read(verifier, elsewhere).isVerified());
+        assumeNotNull(verifier.fingerprint(jar));
+
+        // Jars in other directories sharing the cache are kept
+        verifier.saveCache(this.modulesDir, Collections.singleton(jar));
+        Properties cache = this.loadCache();
+        assertTrue(cache.containsKey(jar.getAbsolutePath()));
+        assertFalse(cache.containsKey(other.getAbsolutePath()));
+        assertTrue(cache.containsKey(elsewhere.getAbsolutePath()));
+    }
+
+    private Properties loadCache() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(this.cacheFile)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    private ModuleJar read(ModuleVerifier verifier, File jar) {
+        ModuleLoader loader = new ModuleLoader(this.modulesDir);
+        loader.setVerifier(verifier);
+        return loader.readModuleJar(jar);
+    }
+
+    private File createJar(String name) throws IOException {
+        File file = new File(this.modulesDir, name);
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(file))) {
+            out.putNextEntry(new JarEntry("p/M.class"));
+            out.write(new byte[] { (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE });
+            out.closeEntry();
+            out.putNextEntry(new JarEntry("p/" + name + ".txt"));
+            out.write(name.getBytes("UTF-8"));
+            out.closeEntry();
+            out.setComment("Spectre test jar");
+        }
+        return file;
+    }
+
+    private File copyResource(String name) throws IOException {
+        File file = new File(this.modulesDir, name);
+        try (InputStream in = ModuleVerifierTest.class.getResourceAsStream(name)) {
+            Files.copy(in, file.toPath());
+        }
+        return file;
+    }
+
+    private File addEntry(File jar, String name, String entryName) throws IOException {
+        File file = new File(this.modulesDir, name);
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(jar));
+             ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            byte[] buffer = new byte[8192];
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                out.closeEntry();
+            }
+            out.putNextEntry(new ZipEntry(entryName));
+            out.write(new byte[] { (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE });
+            out.closeEntry();
+        }
+        return file;
+    }
+
+    private Certificate trustedCertificate() throws Exception {
+        try (InputStream in = ModuleVerifierTest.class.getResourceAsStream("trusted.cer")) {
+            return CertificateFactory.getInstance("X.509").generateCertificate(in);
+        }
+    }
+
+    private static String sha256(File file) throws IOException {
+        return ModuleVerifier.toHex(ModuleVerifier.newDigest().digest(Files.readAllBytes(file.toPath())));
+    }
+}